@@ -0,0 +1,239 @@
+package com.github.mrmks.gvy223.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import javax.script.ScriptContext;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A multi-threaded load generator for {@link com.github.mrmks.gvy223.ScriptEngineImpl}.
+ * <p>
+ * Run it with {@code gradle loadTest --args="threads=8 duration=60"}, or replay a manifest recorded by
+ * {@link com.github.mrmks.gvy223.ScriptEngineImpl#snapshotManifest(int)} with
+ * {@code --args="manifest=warmup.txt"}. The arguments are
+ * {@code key=value} pairs, see {@link Config} for the keys and their defaults. The latency of
+ * every op is recorded in nanoseconds and reported in microseconds, failed ops are recorded apart
+ * from the successful ones, and the first failure of each op is printed with its stack trace.
+ * <p>
+ * {@code context=} only applies to EVAL, INVOKE and INTERFACE always use the engine's context.
+ * With {@code context=shared} every EVAL reads the same x and y from the engine's context and writes
+ * nothing per op, with {@code context=thread} each thread sets fresh values in its own context.
+ */
+public final class LoadTest {
+
+    private static volatile boolean stopped;
+
+    public static void main(String[] args) throws Exception {
+        Config cfg = Config.parse(args);
+        Workload workload = new Workload(cfg);
+
+        Workload.Op[] ops = Workload.Op.values();
+        Recorder[] recorders = new Recorder[ops.length];
+        Recorder[] failRecorders = new Recorder[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            recorders[i] = new Recorder(TimeUnit.SECONDS.toNanos(60), 3);
+            failRecorders[i] = new Recorder(TimeUnit.SECONDS.toNanos(60), 3);
+        }
+        AtomicReferenceArray<Throwable> firstFailures = new AtomicReferenceArray<>(ops.length);
+
+        Thread[] threads = new Thread[cfg.threads];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                ScriptContext ctx = workload.newContext();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (!stopped) {
+                    Workload.Op op = workload.pick(random);
+                    Recorder recorder = recorders[op.ordinal()];
+                    long start = System.nanoTime();
+                    try {
+                        workload.run(op, random, ctx);
+                    } catch (Exception e) {
+                        recorder = failRecorders[op.ordinal()];
+                        if (firstFailures.compareAndSet(op.ordinal(), null, e)) {
+                            System.err.printf("first failure of %s:%n", op);
+                            e.printStackTrace();
+                        }
+                    }
+                    recorder.recordValue(Math.min(System.nanoTime() - start, TimeUnit.SECONDS.toNanos(60)));
+                }
+            }, "loadtest-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        System.out.printf("warming up for %ds with %d threads...%n", cfg.warmup, cfg.threads);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(cfg.warmup));
+
+        // drop what was recorded during the warmup;
+        for (int i = 0; i < ops.length; i++) {
+            recorders[i].getIntervalHistogram();
+            failRecorders[i].getIntervalHistogram();
+        }
+        long missesBefore = workload.misses();
+        JvmStats before = JvmStats.sample();
+        long begin = System.nanoTime();
+
+        System.out.printf("measuring for %ds...%n", cfg.duration);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(cfg.duration));
+
+        Histogram[] histograms = new Histogram[ops.length];
+        Histogram[] failures = new Histogram[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            histograms[i] = recorders[i].getIntervalHistogram();
+            failures[i] = failRecorders[i].getIntervalHistogram();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        JvmStats after = JvmStats.sample();
+
+        stopped = true;
+        for (Thread t : threads)
+            t.join();
+
+        report(cfg, ops, histograms, failures, seconds, workload.misses() - missesBefore, before, after);
+    }
+
+    private static void report(Config cfg, Workload.Op[] ops, Histogram[] histograms, Histogram[] failures,
+                               double seconds, long misses, JvmStats before, JvmStats after) throws FileNotFoundException {
+        Histogram total = new Histogram(3);
+        Histogram totalFailed = new Histogram(3);
+        System.out.printf("%n%-10s %12s %12s %10s %10s %10s %10s%n", "op", "count", "ops/s", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+        for (int i = 0; i < ops.length; i++) {
+            Histogram h = histograms[i];
+            total.add(h);
+            printRow(ops[i].name(), h, seconds);
+
+            if (cfg.hgrmDir != null) {
+                try (PrintStream out = new PrintStream(new File(cfg.hgrmDir, ops[i].name().toLowerCase() + ".hgrm"))) {
+                    h.outputPercentileDistribution(out, 1000.0);
+                }
+            }
+        }
+        printRow("TOTAL", total, seconds);
+
+        // failed ops are usually much faster or much slower, they would skew the numbers above;
+        System.out.printf("%nfailed ops:%n");
+        for (int i = 0; i < ops.length; i++) {
+            totalFailed.add(failures[i]);
+            printRow(ops[i].name(), failures[i], seconds);
+
+            if (cfg.hgrmDir != null && failures[i].getTotalCount() > 0) {
+                try (PrintStream out = new PrintStream(new File(cfg.hgrmDir, ops[i].name().toLowerCase() + "-failed.hgrm"))) {
+                    failures[i].outputPercentileDistribution(out, 1000.0);
+                }
+            }
+        }
+        printRow("TOTAL", totalFailed, seconds);
+
+        System.out.printf("%neval cache misses: %d%n", misses);
+        System.out.printf("gc: %d collections, %d ms%n", after.gcCount - before.gcCount, after.gcTimeMs - before.gcTimeMs);
+        System.out.printf("metaspace: %d KiB -> %d KiB (%+d KiB), loaded classes: %+d%n",
+                before.metaspaceBytes / 1024, after.metaspaceBytes / 1024,
+                (after.metaspaceBytes - before.metaspaceBytes) / 1024, after.loadedClasses - before.loadedClasses);
+
+        if (cfg.hgrmDir == null) {
+            System.out.printf("%nlatency distribution of all ops (us):%n");
+            total.outputPercentileDistribution(System.out, 1000.0);
+        } else {
+            System.out.printf("%nlatency distributions written to %s%n", cfg.hgrmDir.getAbsolutePath());
+        }
+    }
+
+    private static void printRow(String name, Histogram h, double seconds) {
+        System.out.printf("%-10s %12d %12.1f %10.1f %10.1f %10.1f %10.1f%n",
+                name, h.getTotalCount(), h.getTotalCount() / seconds,
+                h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(99) / 1000.0,
+                h.getValueAtPercentile(99.9) / 1000.0, h.getMaxValue() / 1000.0);
+    }
+
+    static final class Config {
+        int threads = Runtime.getRuntime().availableProcessors();
+        // seconds;
+        int warmup = 10;
+        int duration = 30;
+        // a WarmupManifest to replay, its scripts and calls replace the built-in ones;
+        File manifest;
+        // distinct cached scripts, and the chance an eval hits one of them; scripts is unused with a manifest;
+        int scripts = 100;
+        double hitRatio = 0.95;
+        // global functions invoked by INVOKE;
+        int functions = 50;
+        // relative weights of the ops;
+        int evalWeight = 60;
+        int invokeWeight = 30;
+        int ifaceWeight = 10;
+        // all the threads eval in the engine's context, or each one in its own;
+        boolean sharedContext = true;
+        // write a .hgrm file per op here instead of printing the distribution;
+        File hgrmDir;
+
+        static Config parse(String[] args) {
+            Config cfg = new Config();
+            for (String arg : args) {
+                int idx = arg.indexOf('=');
+                if (idx < 0)
+                    throw new IllegalArgumentException("expect key=value, got " + arg);
+
+                String key = arg.substring(0, idx), value = arg.substring(idx + 1);
+                switch (key) {
+                    case "threads": cfg.threads = Integer.parseInt(value); break;
+                    case "warmup": cfg.warmup = Integer.parseInt(value); break;
+                    case "duration": cfg.duration = Integer.parseInt(value); break;
+                    case "manifest":
+                        cfg.manifest = new File(value);
+                        if (!cfg.manifest.isFile())
+                            throw new IllegalArgumentException("no such manifest " + value);
+                        break;
+                    case "scripts": cfg.scripts = Integer.parseInt(value); break;
+                    case "hitRatio": cfg.hitRatio = Double.parseDouble(value); break;
+                    case "functions": cfg.functions = Integer.parseInt(value); break;
+                    case "eval": cfg.evalWeight = Integer.parseInt(value); break;
+                    case "invoke": cfg.invokeWeight = Integer.parseInt(value); break;
+                    case "iface": cfg.ifaceWeight = Integer.parseInt(value); break;
+                    case "context":
+                        if (!"shared".equals(value) && !"thread".equals(value))
+                            throw new IllegalArgumentException("context should be shared or thread");
+                        cfg.sharedContext = "shared".equals(value);
+                        break;
+                    case "hgrm":
+                        cfg.hgrmDir = new File(value);
+                        if (!cfg.hgrmDir.isDirectory() && !cfg.hgrmDir.mkdirs())
+                            throw new IllegalArgumentException("can not create directory " + value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown key " + key);
+                }
+            }
+
+            if (cfg.threads <= 0 || cfg.scripts <= 0 || cfg.functions <= 0)
+                throw new IllegalArgumentException("threads, scripts and functions should be positive");
+            return cfg;
+        }
+    }
+
+    private static final class JvmStats {
+        long gcCount, gcTimeMs, metaspaceBytes, loadedClasses;
+
+        static JvmStats sample() {
+            JvmStats stats = new JvmStats();
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                stats.gcCount += Math.max(gc.getCollectionCount(), 0);
+                stats.gcTimeMs += Math.max(gc.getCollectionTime(), 0);
+            }
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if ("Metaspace".equals(pool.getName()))
+                    stats.metaspaceBytes = pool.getUsage().getUsed();
+            }
+            stats.loadedClasses = ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+            return stats;
+        }
+    }
+}
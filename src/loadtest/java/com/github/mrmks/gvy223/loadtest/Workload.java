@@ -0,0 +1,205 @@
+package com.github.mrmks.gvy223.loadtest;
+
+import com.github.mrmks.gvy223.ScriptEngineFactoryImpl;
+import com.github.mrmks.gvy223.ScriptEngineImpl;
+import com.github.mrmks.gvy223.WarmupManifest;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The mixed traffic replayed against one shared engine: script evaluation with a configurable
+ * cache hit ratio, global function calls, and calls through {@link javax.script.Invocable#getInterface}.
+ * <p>
+ * Only EVAL runs in the context picked by {@code context=}. INVOKE and INTERFACE always go through
+ * the engine's own context, that is all {@link javax.script.Invocable} offers.
+ * <p>
+ * With {@code manifest=}, a {@link WarmupManifest} recorded in production supplies the traffic: its
+ * scripts are the ones hit by EVAL, and its calls, weighted by their counts, are the ones made by
+ * INVOKE with random arguments of the recorded types. Calls with argument types we can not make up
+ * are left out. The scripts only get x and y as variables, those which need more show up as failed ops.
+ */
+final class Workload {
+
+    enum Op { EVAL, INVOKE, INTERFACE }
+
+    public interface Fn { Object apply(Object a, Object b); }
+
+    private final LoadTest.Config cfg;
+    private final ScriptEngineImpl engine;
+    private final String[] hotScripts;
+    // the calls made by INVOKE, picked by their cumulative weights;
+    private final List<Call> calls = new ArrayList<>();
+    private final long[] cumulative;
+    private final AtomicLong missCounter = new AtomicLong();
+    private final int totalWeight;
+
+    Workload(LoadTest.Config cfg) throws ScriptException, IOException {
+        this.cfg = cfg;
+        this.engine = (ScriptEngineImpl) new ScriptEngineFactoryImpl().getScriptEngine();
+        this.totalWeight = cfg.evalWeight + cfg.invokeWeight + cfg.ifaceWeight;
+        if (totalWeight <= 0)
+            throw new IllegalArgumentException("at least one of the op weights should be positive");
+
+        engine.put("x", 1);
+        engine.put("y", 2);
+
+        // the recorded scripts are compiled and their functions registered first, so they win over ours;
+        List<String> scripts = new ArrayList<>();
+        if (cfg.manifest != null) {
+            WarmupManifest manifest;
+            try (Reader reader = new FileReader(cfg.manifest)) {
+                manifest = WarmupManifest.read(reader);
+            }
+            engine.warmup(manifest, null);
+
+            for (WarmupManifest.Script script : manifest.getScripts())
+                scripts.add(script.getText());
+            for (WarmupManifest.Call call : manifest.getCalls()) {
+                if (SAMPLE_TYPES.containsAll(call.getTypes()) && call.getCount() > 0)
+                    calls.add(new Call(call.getName(), call.getTypes().toArray(new String[0]), call.getCount()));
+            }
+            System.out.printf("manifest: %d scripts, %d of %d calls replayable%n",
+                    scripts.size(), calls.size(), manifest.getCalls().size());
+        }
+
+        // the functions called by INVOKE and INTERFACE;
+        for (int i = 0; i < cfg.functions; i++)
+            engine.eval("def fn" + i + "(a, b) { a * " + i + " + b }");
+        engine.eval("def apply(a, b) { a - b }");
+
+        if (calls.isEmpty()) {
+            String[] types = {Integer.class.getName(), Integer.class.getName()};
+            for (int i = 0; i < cfg.functions; i++)
+                calls.add(new Call("fn" + i, types, 1));
+        }
+        cumulative = new long[calls.size()];
+        long sum = 0;
+        for (int i = 0; i < cumulative.length; i++)
+            cumulative[i] = sum += calls.get(i).weight;
+
+        // the scripts hit by EVAL, compiled up front so they are all in the cache;
+        if (scripts.isEmpty()) {
+            for (int i = 0; i < cfg.scripts; i++) {
+                scripts.add("x * " + i + " + y");
+                engine.eval(scripts.get(i));
+            }
+        }
+        hotScripts = scripts.toArray(new String[0]);
+    }
+
+    ScriptContext newContext() {
+        if (cfg.sharedContext)
+            return engine.getContext();
+
+        SimpleScriptContext ctx = new SimpleScriptContext();
+        ctx.setBindings(new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+        ctx.setBindings(engine.getBindings(ScriptContext.GLOBAL_SCOPE), ScriptContext.GLOBAL_SCOPE);
+        return ctx;
+    }
+
+    Op pick(ThreadLocalRandom random) {
+        int r = random.nextInt(totalWeight);
+        if (r < cfg.evalWeight)
+            return Op.EVAL;
+        if (r < cfg.evalWeight + cfg.invokeWeight)
+            return Op.INVOKE;
+        return Op.INTERFACE;
+    }
+
+    Object run(Op op, ThreadLocalRandom random, ScriptContext ctx) throws Exception {
+        int a = random.nextInt(1000), b = random.nextInt(1000);
+        switch (op) {
+            case EVAL:
+                String script = random.nextDouble() < cfg.hitRatio ?
+                        hotScripts[random.nextInt(hotScripts.length)] :
+                        // a text never seen before is a cache miss, and a new class;
+                        "x * y + " + missCounter.getAndIncrement();
+
+                if (cfg.sharedContext) {
+                    // the shared context only holds the x and y set up in the constructor, nothing is
+                    // written per op, so the only locking measured is the engine's own;
+                    return engine.eval(script, ctx);
+                }
+
+                Bindings bindings = ctx.getBindings(ScriptContext.ENGINE_SCOPE);
+                bindings.put("x", a);
+                bindings.put("y", b);
+                return engine.eval(script, ctx);
+            case INVOKE:
+                Call call = calls.get(pickCall(random));
+                Object[] args = new Object[call.types.length];
+                for (int i = 0; i < args.length; i++)
+                    args[i] = sample(call.types[i], random);
+                return engine.invokeFunction(call.name, args);
+            case INTERFACE:
+                return engine.getInterface(Fn.class).apply(a, b);
+            default:
+                throw new IllegalStateException("unknown op " + op);
+        }
+    }
+
+    private int pickCall(ThreadLocalRandom random) {
+        long r = random.nextLong(cumulative[cumulative.length - 1]);
+        int idx = Arrays.binarySearch(cumulative, r + 1);
+        return idx >= 0 ? idx : -idx - 1;
+    }
+
+    // the argument types a recorded call may have for us to replay it, null stands for a null argument;
+    private static final Set<String> SAMPLE_TYPES = new HashSet<>(Arrays.asList(
+            null, Integer.class.getName(), Long.class.getName(), Short.class.getName(), Byte.class.getName(),
+            Double.class.getName(), Float.class.getName(), BigDecimal.class.getName(), BigInteger.class.getName(),
+            Boolean.class.getName(), String.class.getName()
+    ));
+
+    private static Object sample(String type, ThreadLocalRandom random) {
+        if (type == null)
+            return null;
+
+        int v = random.nextInt(1000);
+        switch (type) {
+            case "java.lang.Integer": return v;
+            case "java.lang.Long": return (long) v;
+            case "java.lang.Short": return (short) v;
+            case "java.lang.Byte": return (byte) v;
+            case "java.lang.Double": return v / 7.0;
+            case "java.lang.Float": return v / 7.0f;
+            case "java.math.BigDecimal": return BigDecimal.valueOf(v, 2);
+            case "java.math.BigInteger": return BigInteger.valueOf(v);
+            case "java.lang.Boolean": return (v & 1) == 0;
+            case "java.lang.String": return "s" + v;
+            default: throw new IllegalStateException("can not sample " + type);
+        }
+    }
+
+    private static final class Call {
+        private final String name;
+        private final String[] types;
+        private final long weight;
+
+        Call(String name, String[] types, long weight) {
+            this.name = name;
+            this.types = types;
+            this.weight = weight;
+        }
+    }
+
+    long misses() {
+        return missCounter.get();
+    }
+}
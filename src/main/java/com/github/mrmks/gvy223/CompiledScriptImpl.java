@@ -0,0 +1,228 @@
+package com.github.mrmks.gvy223;
+
+import org.codehaus.groovy.runtime.typehandling.DefaultTypeTransformation;
+
+import javax.script.Bindings;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compiled script returned by {@link ScriptEngineImpl#compile(String)}.
+ * <p>
+ * {@link #eval(Bindings)} keeps the full JSR-223 behaviour, {@code out}, {@code context} and the
+ * engine's writers included; it only swaps the heavy SimpleScriptContext for a light one over the
+ * engine's context, and still pays for a context per call.
+ * <p>
+ * {@link #evalDirect(Map)} and the typed accessors are the fast path: they run the script directly
+ * against the map without any ScriptContext. The engine's global scope is still visible there, but the
+ * {@code out} and {@code context} shortcuts are not. The variables are used as they are, they should
+ * not be shared between threads. The typed accessors convert the result the same way as a cast in
+ * groovy, and all of them reject a null result with a ScriptException.
+ */
+public final class CompiledScriptImpl extends CompiledScript {
+
+    private final ScriptEngineImpl engine;
+    private final GvyScriptCore.Compiled compiled;
+
+    CompiledScriptImpl(ScriptEngineImpl engine, GvyScriptCore.Compiled compiled) {
+        this.engine = engine;
+        this.compiled = compiled;
+    }
+
+    @Override
+    public Object eval(ScriptContext context) throws ScriptException {
+        return compiled.eval(context);
+    }
+
+    @Override
+    public Object eval(Bindings bindings) throws ScriptException {
+        if (bindings == null)
+            return eval(engine.getContext());
+
+        return compiled.eval(new BindingsContext(engine.getContext(), bindings));
+    }
+
+    public Object evalDirect(Map<String, Object> vars) throws ScriptException {
+        if (vars == null)
+            throw new NullPointerException("vars can not be null");
+
+        return run(vars);
+    }
+
+    // typed accessors on the direct path;
+    public boolean evalBoolean(Map<String, Object> vars) throws ScriptException {
+        return DefaultTypeTransformation.castToBoolean(nonNull(evalDirect(vars)));
+    }
+
+    public int evalInt(Map<String, Object> vars) throws ScriptException {
+        Object obj = evalDirect(vars);
+        try {
+            return DefaultTypeTransformation.intUnbox(nonNull(obj));
+        } catch (ClassCastException cce) {
+            throw new ScriptException(cce);
+        }
+    }
+
+    public long evalLong(Map<String, Object> vars) throws ScriptException {
+        Object obj = evalDirect(vars);
+        try {
+            return DefaultTypeTransformation.longUnbox(nonNull(obj));
+        } catch (ClassCastException cce) {
+            throw new ScriptException(cce);
+        }
+    }
+
+    public double evalDouble(Map<String, Object> vars) throws ScriptException {
+        Object obj = evalDirect(vars);
+        try {
+            return DefaultTypeTransformation.doubleUnbox(nonNull(obj));
+        } catch (ClassCastException cce) {
+            throw new ScriptException(cce);
+        }
+    }
+
+    @Override
+    public ScriptEngine getEngine() {
+        return engine;
+    }
+
+    private Object run(Map<String, Object> vars) throws ScriptException {
+        return compiled.eval(vars, engine.getBindings(ScriptContext.GLOBAL_SCOPE));
+    }
+
+    // what CompiledScript.eval(Bindings) builds, without the readers and writers
+    // SimpleScriptContext creates in its constructor only to be replaced right away;
+    private static final class BindingsContext implements ScriptContext {
+        private static final List<Integer> SCOPES = Collections.unmodifiableList(Arrays.asList(ENGINE_SCOPE, GLOBAL_SCOPE));
+
+        private Bindings engineScope;
+        private Bindings globalScope;
+        private Reader reader;
+        private Writer writer;
+        private Writer errorWriter;
+
+        BindingsContext(ScriptContext parent, Bindings engineScope) {
+            this.engineScope = engineScope;
+            this.globalScope = parent.getBindings(GLOBAL_SCOPE);
+            this.reader = parent.getReader();
+            this.writer = parent.getWriter();
+            this.errorWriter = parent.getErrorWriter();
+        }
+
+        @Override
+        public void setBindings(Bindings bindings, int scope) {
+            switch (scope) {
+                case ENGINE_SCOPE:
+                    if (bindings == null)
+                        throw new NullPointerException("Engine scope Bindings may not be null.");
+                    engineScope = bindings;
+                    break;
+                case GLOBAL_SCOPE:
+                    globalScope = bindings;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid scope value.");
+            }
+        }
+
+        @Override
+        public Bindings getBindings(int scope) {
+            switch (scope) {
+                case ENGINE_SCOPE:
+                    return engineScope;
+                case GLOBAL_SCOPE:
+                    return globalScope;
+                default:
+                    throw new IllegalArgumentException("Invalid scope value.");
+            }
+        }
+
+        @Override
+        public void setAttribute(String name, Object value, int scope) {
+            Bindings bindings = getBindings(scope);
+            if (bindings != null)
+                bindings.put(name, value);
+        }
+
+        @Override
+        public Object getAttribute(String name, int scope) {
+            Bindings bindings = getBindings(scope);
+            return bindings == null ? null : bindings.get(name);
+        }
+
+        @Override
+        public Object removeAttribute(String name, int scope) {
+            Bindings bindings = getBindings(scope);
+            return bindings == null ? null : bindings.remove(name);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            int scope = getAttributesScope(name);
+            return scope == -1 ? null : getAttribute(name, scope);
+        }
+
+        @Override
+        public int getAttributesScope(String name) {
+            if (name == null)
+                throw new NullPointerException("name can not be null");
+            if (name.isEmpty())
+                throw new IllegalArgumentException("name can not be empty");
+
+            if (engineScope.containsKey(name))
+                return ENGINE_SCOPE;
+            if (globalScope != null && globalScope.containsKey(name))
+                return GLOBAL_SCOPE;
+            return -1;
+        }
+
+        @Override
+        public Writer getWriter() {
+            return writer;
+        }
+
+        @Override
+        public Writer getErrorWriter() {
+            return errorWriter;
+        }
+
+        @Override
+        public void setWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void setErrorWriter(Writer writer) {
+            this.errorWriter = writer;
+        }
+
+        @Override
+        public Reader getReader() {
+            return reader;
+        }
+
+        @Override
+        public void setReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public List<Integer> getScopes() {
+            return SCOPES;
+        }
+    }
+
+    private static Object nonNull(Object obj) throws ScriptException {
+        if (obj == null)
+            throw new ScriptException("Script returned null, which can not be a primitive");
+        return obj;
+    }
+}
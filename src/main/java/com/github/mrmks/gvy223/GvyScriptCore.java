@@ -20,10 +20,21 @@ import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 public final class GvyScriptCore {
 
@@ -36,6 +47,15 @@ public final class GvyScriptCore {
     private final ConcurrentHashMap<String, Class<?>> classMap = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, MethodClosure> globalMethodMap = new ConcurrentHashMap<>();
 
+    // state used to build a warmup manifest;
+    // compile order, and the order in which the functions of a script first reached globalMethodMap;
+    private final ConcurrentLinkedQueue<WarmupManifest.Script> compiledScripts = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<WarmupManifest.Script> registeredScripts = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Class<?>, WarmupManifest.Script> scriptInfo = new ConcurrentHashMap<>();
+    private final Set<WarmupManifest.Script> registeredInfo = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<CallKey, LongAdder> recordedCalls = new ConcurrentHashMap<>();
+    private volatile boolean recording;
+
     public GvyScriptCore(CompilerConfiguration cfg, Supplier<String> nameSup) {
         this.config = cfg == null ? new CompilerConfiguration(CompilerConfiguration.DEFAULT) : cfg;
         this.loader = getClassLoader(this.config);
@@ -69,10 +89,18 @@ public final class GvyScriptCore {
         return eval(klass, ctx);
     }
 
-    public interface Compiled { Object eval(ScriptContext ctx) throws ScriptException; }
+    public interface Compiled {
+        Object eval(ScriptContext ctx) throws ScriptException;
+
+        /**
+         * Runs the script directly against {@code vars}, without a ScriptContext. Variables missing in
+         * {@code vars} are looked up in {@code globals}, which may be null. The maps are not synchronized,
+         * the caller should not share {@code vars} between threads.
+         */
+        Object eval(Map<String, Object> vars, Map<String, Object> globals) throws ScriptException;
+    }
     public Compiled compile(ScriptContext ctx, String text) throws ScriptException {
-        final Class<?> klass = getScriptClass(text, ctx);
-        return context -> GvyScriptCore.this.eval(klass, context);
+        return new CompiledImpl(getScriptClass(text, ctx), ctx);
     }
 
     public Object invokeTop(ScriptContext context, Object thiz, String name, Object[] args) throws ScriptException, NoSuchMethodException {
@@ -80,9 +108,10 @@ public final class GvyScriptCore {
             throw new NullPointerException("method name is null!");
 
         try {
-            if (thiz == null)
+            if (thiz == null) {
+                if (recording) recordCall(name, args);
                 return callGlobalFromEngine(name, args, context, getClass());
-            else
+            } else
                 return InvokerHelper.invokeMethod(thiz, name, args);
         } catch (MissingMethodException mme) {
             // real missing method exception;
@@ -109,9 +138,10 @@ public final class GvyScriptCore {
             throw new RuntimeException("method is null, which should never happen");
 
         try {
-            if (thiz == null)
+            if (thiz == null) {
+                if (recording) recordCall(method.getName(), args);
                 return callGlobalFromEngine(method.getName(), args, context, getClass());
-            else
+            } else
                 return InvokerHelper.invokeMethod(thiz, method.getName(), args);
         } catch (MissingMethodException re) {
 
@@ -130,6 +160,126 @@ public final class GvyScriptCore {
         }
     }
 
+    // ===
+    // warmup manifest
+    // ===
+
+    /**
+     * Turns the recording of global function calls on or off. Compiled scripts are always
+     * remembered, the calls are only counted while recording, since that costs a little on each call.
+     */
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Builds a manifest from the scripts compiled so far and the {@code maxCalls} hottest calls recorded.
+     */
+    public WarmupManifest snapshotManifest(int maxCalls) {
+        List<WarmupManifest.Call> calls = recordedCalls.entrySet().stream()
+                .map(e -> new WarmupManifest.Call(e.getKey().name, e.getKey().types, e.getValue().sum()))
+                .sorted()
+                .limit(Math.max(maxCalls, 0))
+                .collect(Collectors.toList());
+
+        // the registered scripts first, in the order they were registered, the rest are only compiled;
+        List<WarmupManifest.Script> scripts = new ArrayList<>(compiledScripts.size());
+        for (WarmupManifest.Script s : registeredScripts)
+            scripts.add(s.withRegistered(true));
+        for (WarmupManifest.Script s : compiledScripts) {
+            if (!registeredInfo.contains(s))
+                scripts.add(s);
+        }
+
+        return new WarmupManifest(scripts, calls);
+    }
+
+    /**
+     * Supplies sample arguments for a recorded call, or null if the call should not be exercised.
+     * Functions may have side effects, so nothing is invoked during warmup unless asked for here.
+     */
+    public interface WarmupArgs {
+        Object[] sample(String name, Class<?>[] types);
+
+        // a sampled call threw, the rest of its rounds are skipped but the warmup goes on;
+        default void failed(String name, Object[] args, Throwable cause) {}
+    }
+
+    public void warmup(ScriptContext ctx, WarmupManifest manifest, Executor executor) throws ScriptException {
+        warmup(ctx, manifest, executor, null, 0);
+    }
+
+    /**
+     * Replays a manifest recorded by {@link #snapshotManifest(int)}: the scripts are compiled in parallel
+     * on {@code executor} (the common pool if null), the functions of the scripts which had registered
+     * them before are registered again in the same order, without running the script bodies, and each recorded call with sample arguments is invoked {@code rounds}
+     * times to settle the call-site caches. A call that throws is reported to {@link WarmupArgs#failed}
+     * and does not stop the warmup. This method returns once all of it is done, so the caller can report
+     * ready right after.
+     * <p>
+     * Each script is compiled with the script.base it was recorded with and no customizers, the compile
+     * attributes in {@code ctx} are not used. The compiler configuration is shared by the whole core,
+     * this should be called before serving any traffic.
+     */
+    public void warmup(ScriptContext ctx, WarmupManifest manifest, Executor executor, WarmupArgs sampler, int rounds) throws ScriptException {
+        // the configuration can only hold one base class at a time, compile the scripts group by group;
+        List<WarmupManifest.Script> scripts = manifest.getScripts();
+        LinkedHashMap<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < scripts.size(); i++)
+            groups.computeIfAbsent(scripts.get(i).getBaseClass(), k -> new ArrayList<>()).add(i);
+
+        ScriptException failure = null;
+        Class<?>[] classes = new Class<?>[scripts.size()];
+        config.getCompilationCustomizers().clear();
+        try {
+            for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+                config.setScriptBaseClass(group.getKey());
+
+                List<CompletableFuture<Class<?>>> futures = new ArrayList<>(group.getValue().size());
+                for (int idx : group.getValue()) {
+                    WarmupManifest.Script s = scripts.get(idx);
+                    Supplier<Class<?>> task = () -> {
+                        Class<?> klass = classMap.get(s.getText());
+                        if (klass != null)
+                            return klass;
+                        try {
+                            return compileScriptClass(s.getText(), s.getName());
+                        } catch (ScriptException se) {
+                            throw new CompletionException(se);
+                        }
+                    };
+                    futures.add(executor == null ? CompletableFuture.supplyAsync(task) : CompletableFuture.supplyAsync(task, executor));
+                }
+
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        classes[group.getValue().get(i)] = futures.get(i).join();
+                    } catch (CompletionException ce) {
+                        ScriptException se = ce.getCause() instanceof ScriptException ?
+                                (ScriptException) ce.getCause() : new ScriptException(String.valueOf(ce.getCause()));
+                        if (failure == null) failure = se;
+                        else failure.addSuppressed(se);
+                    }
+                }
+            }
+        } finally {
+            config.setScriptBaseClass(CompilerConfiguration.DEFAULT.getScriptBaseClass());
+        }
+        if (failure != null)
+            throw failure;
+
+        // register in the manifest order, the first function with a name wins; scripts which were only
+        // compiled did not register anything, their functions must not be callable after a restart either;
+        for (int i = 0; i < classes.length; i++) {
+            if (scripts.get(i).isRegistered() && Script.class.isAssignableFrom(classes[i]))
+                prepareScript(classes[i].asSubclass(Script.class), ctx);
+        }
+
+        for (WarmupManifest.Call call : manifest.getCalls()) {
+            exerciseCall(ctx, call, sampler, rounds);
+        }
+    }
+
     // ===
     // internal methods
     // ===
@@ -217,12 +367,30 @@ public final class GvyScriptCore {
         updateCompilerCfg(context);
 
         // here, we need to compile the script;
+        return compileScriptClass(script, generateScriptName(context));
+    }
+
+    private Class<?> compileScriptClass(String script, String name) throws ScriptException {
+        // customizers can not be written to a manifest, so these scripts can not be replayed;
+        boolean replayable = config.getCompilationCustomizers().isEmpty();
+        String baseClass = config.getScriptBaseClass();
+
+        Class<?> klass;
         try {
-            klass = loader.parseClass(script, generateScriptName(context));
+            klass = loader.parseClass(script, name);
         } catch (CompilationFailedException cfe) {
             throw new ScriptException(cfe.getMessage());
         }
-        classMap.put(script, klass);
+
+        Class<?> prev = classMap.putIfAbsent(script, klass);
+        if (prev != null)
+            return prev;
+
+        if (replayable) {
+            WarmupManifest.Script info = new WarmupManifest.Script(name, baseClass, script, false);
+            scriptInfo.put(klass, info);
+            compiledScripts.add(info);
+        }
         return klass;
     }
 
@@ -239,7 +407,11 @@ public final class GvyScriptCore {
             return klass;
         }
 
-        Binding binding = new InEngineBinding(context);
+        return prepareScript(klass.asSubclass(Script.class), context).run();
+    }
+
+    private Object eval(Class<?> klass, Map<String, Object> vars, Map<String, Object> globals, MetaClass meta) throws ScriptException {
+        Binding binding = globals == null ? new Binding(vars) : new DirectBinding(vars, globals);
         Script script;
         try {
             script = InvokerHelper.newScript(klass.asSubclass(Script.class), binding);
@@ -248,17 +420,36 @@ public final class GvyScriptCore {
             throw new ScriptException(e);
         }
 
+        script.setMetaClass(meta);
+        return script.run();
+    }
+
+    private Script prepareScript(Class<? extends Script> klass, ScriptContext context) throws ScriptException {
+        Binding binding = context == null ? new Binding() : new InEngineBinding(context);
+        Script script;
+        try {
+            script = InvokerHelper.newScript(klass, binding);
+        } catch (Exception e) {
+            // if any exception, then we can not run this script;
+            throw new ScriptException(e);
+        }
+
         // make method closure?
         addMethodToGlobal(script, klass.getMethods());
+        WarmupManifest.Script info = scriptInfo.get(klass);
+        if (info != null && registeredInfo.add(info))
+            registeredScripts.add(info);
 
         // update delegate meta class to invoke method in this engine context;
         script.setMetaClass(new InEngineMetaClass(script.getMetaClass(), context));
 
-        return script.run();
+        return script;
     }
 
     // methods used to invoke
     private Object callGlobalFromMeta(String name, Object[] args, ScriptContext ctx, Class<?> source) {
+        if (recording) recordCall(name, args);
+
         Closure<?> closure = globalMethodMap.get(name);
         MissingMethodException mme_ = null;
         if (closure != null)
@@ -310,8 +501,78 @@ public final class GvyScriptCore {
         throw new MissingMethodException(name, source, args);
     }
 
+    // methods used to record and replay warmup manifest
+    private void recordCall(String name, Object[] args) {
+        int len = args == null ? 0 : args.length;
+        String[] types = new String[len];
+        for (int i = 0; i < len; i++)
+            types[i] = args[i] == null ? null : args[i].getClass().getName();
+
+        recordedCalls.computeIfAbsent(new CallKey(name, types), k -> new LongAdder()).increment();
+    }
+
+    private void exerciseCall(ScriptContext ctx, WarmupManifest.Call call, WarmupArgs sampler, int rounds) {
+        String name = call.getName();
+        MethodClosure closure = globalMethodMap.get(name);
+        if (closure == null)
+            return;
+
+        // the manifest may come from an older version of the scripts, skip what can not be resolved any more;
+        String[] typeNames = call.types();
+        Class<?>[] types = new Class<?>[typeNames.length];
+        try {
+            for (int i = 0; i < typeNames.length; i++)
+                types[i] = typeNames[i] == null ? null : Class.forName(typeNames[i], false, loader);
+
+            if (InvokerHelper.getMetaClass(closure.getOwner()).pickMethod(name, types) == null)
+                return;
+        } catch (ClassNotFoundException | GroovyRuntimeException e) {
+            return;
+        }
+
+        Object[] args = sampler == null ? null : sampler.sample(name, types);
+        if (args == null)
+            return;
+
+        for (int i = 0; i < rounds; i++) {
+            try {
+                callGlobalFromEngine(name, args, ctx, getClass());
+            } catch (InvokerInvocationException iie) {
+                sampler.failed(name, args, iie.getCause());
+                return;
+            } catch (RuntimeException re) {
+                sampler.failed(name, args, re);
+                return;
+            }
+        }
+    }
 
     // internal classes;
+    private static final class CallKey {
+        private final String name;
+        private final String[] types;
+        private final int hash;
+
+        CallKey(String name, String[] types) {
+            this.name = name;
+            this.types = types;
+            this.hash = name.hashCode() * 31 + Arrays.hashCode(types);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CallKey)) return false;
+            CallKey that = (CallKey) o;
+            return name.equals(that.name) && Arrays.equals(types, that.types);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
     private final class InEngineMetaClass extends DelegatingMetaClass {
         private final ScriptContext context;
         InEngineMetaClass(MetaClass delegate, ScriptContext context) {
@@ -339,7 +600,18 @@ public final class GvyScriptCore {
             try {
                 return super.invokeMethod(object, methodName, arguments);
             } catch (MissingMethodException mme) {
-                return callGlobalFromMeta(methodName, arguments, context, getTheClass());
+                if (context != null || !(object instanceof Script))
+                    return callGlobalFromMeta(methodName, arguments, context, getTheClass());
+            }
+
+            // compiled scripts may run without a context, the closures are in their binding then;
+            try {
+                return callGlobalFromMeta(methodName, arguments, null, getTheClass());
+            } catch (MissingMethodException mme) {
+                Object obj = ((Script) object).getBinding().getVariables().get(methodName);
+                if (obj instanceof Closure<?>)
+                    return ((Closure<?>) obj).call(arguments);
+                throw mme;
             }
         }
 
@@ -350,6 +622,74 @@ public final class GvyScriptCore {
         }
     }
 
+    private final class CompiledImpl implements Compiled {
+
+        private final Class<?> klass;
+        // the context the script was compiled in, the functions are bound to it;
+        private final ScriptContext context;
+        // the meta class does not hold a context, it can be shared by all the runs without a context;
+        private volatile MetaClass meta;
+
+        CompiledImpl(Class<?> klass, ScriptContext context) {
+            this.klass = klass;
+            this.context = context;
+        }
+
+        @Override
+        public Object eval(ScriptContext ctx) throws ScriptException {
+            return GvyScriptCore.this.eval(klass, ctx);
+        }
+
+        @Override
+        public Object eval(Map<String, Object> vars, Map<String, Object> globals) throws ScriptException {
+            if (!Script.class.isAssignableFrom(klass))
+                return klass;
+
+            MetaClass mc = meta;
+            if (mc == null) {
+                synchronized (this) {
+                    if ((mc = meta) == null) {
+                        // register the functions the same way eval(ScriptContext) does, a function
+                        // bound to a run without context could not see the engine's variables later;
+                        if (context != null)
+                            prepareScript(klass.asSubclass(Script.class), context);
+                        meta = mc = new InEngineMetaClass(InvokerHelper.getMetaClass(klass), null);
+                    }
+                }
+            }
+
+            return GvyScriptCore.this.eval(klass, vars, globals, mc);
+        }
+    }
+
+    private static final class DirectBinding extends Binding {
+
+        private final Map<String, Object> globals;
+        DirectBinding(Map<String, Object> vars, Map<String, Object> globals) {
+            super(vars);
+            this.globals = globals;
+        }
+
+        @Override
+        public Object getVariable(String name) {
+            Map<?, ?> vars = getVariables();
+            Object obj = vars.get(name);
+            if (obj != null || vars.containsKey(name))
+                return obj;
+
+            obj = globals.get(name);
+            if (obj != null || globals.containsKey(name))
+                return obj;
+
+            throw new MissingPropertyException(name, getClass());
+        }
+
+        @Override
+        public boolean hasVariable(String name) {
+            return super.hasVariable(name) || globals.containsKey(name);
+        }
+    }
+
     private static final class InEngineBinding extends Binding {
 
         private final ScriptContext ctx;
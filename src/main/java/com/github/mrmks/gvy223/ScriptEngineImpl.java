@@ -6,6 +6,7 @@ import javax.script.*;
 import java.io.IOException;
 import java.io.Reader;
 import java.lang.reflect.Proxy;
+import java.util.concurrent.Executor;
 
 public class ScriptEngineImpl extends AbstractScriptEngine implements Compilable, Invocable {
 
@@ -59,23 +60,12 @@ public class ScriptEngineImpl extends AbstractScriptEngine implements Compilable
     }
 
     @Override
-    public CompiledScript compile(String script) throws ScriptException {
-        GvyScriptCore.Compiled compiled = core.compile(context, script);
-        return new CompiledScript() {
-            @Override
-            public Object eval(ScriptContext context) throws ScriptException {
-                return compiled.eval(context);
-            }
-
-            @Override
-            public ScriptEngine getEngine() {
-                return ScriptEngineImpl.this;
-            }
-        };
+    public CompiledScriptImpl compile(String script) throws ScriptException {
+        return new CompiledScriptImpl(this, core.compile(context, script));
     }
 
     @Override
-    public CompiledScript compile(Reader script) throws ScriptException {
+    public CompiledScriptImpl compile(Reader script) throws ScriptException {
         return compile(readAll(script));
     }
 
@@ -92,6 +82,23 @@ public class ScriptEngineImpl extends AbstractScriptEngine implements Compilable
         return core.invokeTop(context, null, name, args);
     }
 
+    // warmup manifest, see GvyScriptCore for details
+    public void setRecording(boolean recording) {
+        core.setRecording(recording);
+    }
+
+    public WarmupManifest snapshotManifest(int maxCalls) {
+        return core.snapshotManifest(maxCalls);
+    }
+
+    public void warmup(WarmupManifest manifest, Executor executor) throws ScriptException {
+        core.warmup(context, manifest, executor);
+    }
+
+    public void warmup(WarmupManifest manifest, Executor executor, GvyScriptCore.WarmupArgs sampler, int rounds) throws ScriptException {
+        core.warmup(context, manifest, executor, sampler, rounds);
+    }
+
     private <T> T makeInterface(Object obj, Class<T> clazz) {
         final Object thiz = obj;
         if (clazz == null || !clazz.isInterface()) {
@@ -0,0 +1,191 @@
+package com.github.mrmks.gvy223;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of the scripts compiled by a {@link GvyScriptCore} and the global functions
+ * invoked most often, used to warm a fresh core up before it serves any traffic.
+ * <p>
+ * The manifest is written as plain text, one entry per line, so it can be kept next to
+ * the application's other state and replayed with {@link GvyScriptCore#warmup}. Only scripts
+ * compiled without compilation customizers are recorded, the customizers can not be written down.
+ */
+public final class WarmupManifest {
+
+    private static final String HEADER = "#gvy223.warmup.v1";
+    private static final String NULL_TYPE = "null";
+
+    private final List<Script> scripts;
+    private final List<Call> calls;
+
+    WarmupManifest(List<Script> scripts, List<Call> calls) {
+        this.scripts = Collections.unmodifiableList(scripts);
+        this.calls = Collections.unmodifiableList(calls);
+    }
+
+    public List<Script> getScripts() {
+        return scripts;
+    }
+
+    // sorted by count, the hottest call comes first;
+    public List<Call> getCalls() {
+        return calls;
+    }
+
+    public void write(Writer writer) throws IOException {
+        Base64.Encoder encoder = Base64.getEncoder();
+        writer.write(HEADER);
+        writer.write('\n');
+
+        for (Script s : scripts) {
+            writer.write(s.registered ? "S R " : "S C ");
+            writer.write(encoder.encodeToString(s.name.getBytes(StandardCharsets.UTF_8)));
+            writer.write(' ');
+            // an empty field stands for the default base class;
+            if (s.baseClass != null)
+                writer.write(encoder.encodeToString(s.baseClass.getBytes(StandardCharsets.UTF_8)));
+            writer.write(' ');
+            writer.write(encoder.encodeToString(s.text.getBytes(StandardCharsets.UTF_8)));
+            writer.write('\n');
+        }
+
+        for (Call c : calls) {
+            writer.write("F ");
+            writer.write(Long.toString(c.count));
+            writer.write(' ');
+            writer.write(encoder.encodeToString(c.name.getBytes(StandardCharsets.UTF_8)));
+            for (String type : c.types) {
+                writer.write(' ');
+                writer.write(type == null ? NULL_TYPE : type);
+            }
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    public static WarmupManifest read(Reader reader) throws IOException {
+        BufferedReader br = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+
+        String line = br.readLine();
+        if (!HEADER.equals(line))
+            throw new IOException("Not a warmup manifest: " + line);
+
+        Base64.Decoder decoder = Base64.getDecoder();
+        List<Script> scripts = new ArrayList<>();
+        List<Call> calls = new ArrayList<>();
+        while ((line = br.readLine()) != null) {
+            if (line.isEmpty())
+                continue;
+
+            // keep the trailing empty fields, an empty script is written as an empty field;
+            String[] parts = line.split(" ", -1);
+            try {
+                if ("S".equals(parts[0]) && parts.length == 5 && ("R".equals(parts[1]) || "C".equals(parts[1]))) {
+                    scripts.add(new Script(
+                            new String(decoder.decode(parts[2]), StandardCharsets.UTF_8),
+                            parts[3].isEmpty() ? null : new String(decoder.decode(parts[3]), StandardCharsets.UTF_8),
+                            new String(decoder.decode(parts[4]), StandardCharsets.UTF_8),
+                            "R".equals(parts[1])
+                    ));
+                } else if ("F".equals(parts[0]) && parts.length >= 3) {
+                    String[] types = Arrays.copyOfRange(parts, 3, parts.length);
+                    for (int i = 0; i < types.length; i++)
+                        if (NULL_TYPE.equals(types[i])) types[i] = null;
+
+                    calls.add(new Call(
+                            new String(decoder.decode(parts[2]), StandardCharsets.UTF_8),
+                            types,
+                            Long.parseLong(parts[1])
+                    ));
+                } else {
+                    throw new IOException("Malformed manifest line: " + line);
+                }
+            } catch (IllegalArgumentException iae) {
+                // both bad base64 and bad numbers end up here;
+                throw new IOException("Malformed manifest line: " + line, iae);
+            }
+        }
+
+        calls.sort(null);
+        return new WarmupManifest(scripts, calls);
+    }
+
+    public static final class Script {
+        private final String name;
+        // the script.base it was compiled with, null for the default one;
+        private final String baseClass;
+        private final String text;
+        // whether the functions of the script were registered as globals, or it was only compiled;
+        private final boolean registered;
+
+        Script(String name, String baseClass, String text, boolean registered) {
+            this.name = name;
+            this.baseClass = baseClass;
+            this.text = text;
+            this.registered = registered;
+        }
+
+        Script withRegistered(boolean registered) {
+            return new Script(name, baseClass, text, registered);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getBaseClass() {
+            return baseClass;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public boolean isRegistered() {
+            return registered;
+        }
+    }
+
+    public static final class Call implements Comparable<Call> {
+        private final String name;
+        // binary class names, a null element stands for a null argument;
+        private final String[] types;
+        private final long count;
+
+        Call(String name, String[] types, long count) {
+            this.name = name;
+            this.types = types;
+            this.count = count;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getTypes() {
+            return Collections.unmodifiableList(Arrays.asList(types));
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        String[] types() {
+            return types;
+        }
+
+        @Override
+        public int compareTo(Call o) {
+            return Long.compare(o.count, count);
+        }
+    }
+}
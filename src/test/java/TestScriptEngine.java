@@ -1,11 +1,21 @@
+import com.github.mrmks.gvy223.CompiledScriptImpl;
+import com.github.mrmks.gvy223.GvyScriptCore;
 import com.github.mrmks.gvy223.ScriptEngineFactoryImpl;
 import com.github.mrmks.gvy223.ScriptEngineImpl;
+import com.github.mrmks.gvy223.WarmupManifest;
 import groovy.transform.CompileStatic;
 import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import javax.script.ScriptContext;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestScriptEngine {
 
@@ -38,4 +48,188 @@ public class TestScriptEngine {
         );
     }
 
+    @Test
+    public void testWarmup() {
+        ScriptEngineImpl engine = (ScriptEngineImpl) new ScriptEngineFactoryImpl().getScriptEngine();
+        engine.setRecording(true);
+
+        Assertions.assertDoesNotThrow(() -> engine.eval("def add(a, b) { a + b }\ndef twice(a) { add(a, a) }"));
+        for (int i = 0; i < 3; i++)
+            Assertions.assertDoesNotThrow(() -> engine.invokeFunction("twice", 2));
+        Assertions.assertDoesNotThrow(() -> engine.invokeFunction("add", "a", "b"));
+
+        StringWriter out = new StringWriter();
+        Assertions.assertDoesNotThrow(() -> engine.snapshotManifest(10).write(out));
+
+        WarmupManifest manifest = Assertions.assertDoesNotThrow(() -> WarmupManifest.read(new StringReader(out.toString())));
+        Assertions.assertEquals(1, manifest.getScripts().size());
+        Assertions.assertEquals("twice", manifest.getCalls().get(0).getName());
+        Assertions.assertEquals(3, manifest.getCalls().get(0).getCount());
+
+        // a fresh engine knows the functions without evaluating anything;
+        ScriptEngineImpl fresh = (ScriptEngineImpl) new ScriptEngineFactoryImpl().getScriptEngine();
+        AtomicInteger sampled = new AtomicInteger();
+        Assertions.assertDoesNotThrow(() -> fresh.warmup(manifest, null, (name, types) -> {
+            sampled.incrementAndGet();
+            return "twice".equals(name) ? new Object[]{1} : null;
+        }, 5));
+
+        Assertions.assertEquals(manifest.getCalls().size(), sampled.get());
+        Assertions.assertEquals(
+                4,
+                Assertions.assertDoesNotThrow(() -> fresh.invokeFunction("twice", 2))
+        );
+    }
+
+    public static abstract class GreetingScript extends groovy.lang.Script {
+        public String greet() { return "hi"; }
+    }
+
+    @Test
+    public void testWarmupReplay() {
+        ScriptEngineImpl engine = (ScriptEngineImpl) new ScriptEngineFactoryImpl().getScriptEngine();
+        engine.setRecording(true);
+
+        engine.getContext().setAttribute(
+                "#gvy223.groovy.compile.script.base", GreetingScript.class.getName(), ScriptContext.ENGINE_SCOPE
+        );
+        Assertions.assertDoesNotThrow(() -> engine.eval("def hello() { greet() }"));
+        engine.getContext().removeAttribute("#gvy223.groovy.compile.script.base", ScriptContext.ENGINE_SCOPE);
+
+        Assertions.assertDoesNotThrow(() -> engine.eval(""));
+        Assertions.assertDoesNotThrow(() -> engine.eval("def boom(a) { throw new IllegalStateException('boom') }"));
+        Assertions.assertDoesNotThrow(() -> engine.invokeFunction("hello"));
+        Assertions.assertThrows(IllegalStateException.class, () -> engine.invokeFunction("boom", 1));
+
+        // scripts compiled with customizers can not be replayed, so they are left out;
+        engine.getContext().setAttribute(
+                "#gvy223.groovy.compile.customizer", new ASTTransformationCustomizer(CompileStatic.class), ScriptContext.ENGINE_SCOPE
+        );
+        Assertions.assertDoesNotThrow(() -> engine.eval("def typed() { 'typed' }"));
+
+        StringWriter out = new StringWriter();
+        Assertions.assertDoesNotThrow(() -> engine.snapshotManifest(10).write(out));
+        WarmupManifest manifest = Assertions.assertDoesNotThrow(() -> WarmupManifest.read(new StringReader(out.toString())));
+
+        Assertions.assertEquals(3, manifest.getScripts().size());
+        Assertions.assertEquals(GreetingScript.class.getName(), manifest.getScripts().get(0).getBaseClass());
+        Assertions.assertEquals("", manifest.getScripts().get(1).getText());
+
+        // a failing sample does not stop the warmup;
+        ScriptEngineImpl fresh = (ScriptEngineImpl) new ScriptEngineFactoryImpl().getScriptEngine();
+        AtomicInteger failures = new AtomicInteger();
+        Assertions.assertDoesNotThrow(() -> fresh.warmup(manifest, null, new GvyScriptCore.WarmupArgs() {
+            @Override
+            public Object[] sample(String name, Class<?>[] types) {
+                return types.length == 0 ? new Object[0] : new Object[]{1};
+            }
+
+            @Override
+            public void failed(String name, Object[] args, Throwable cause) {
+                Assertions.assertEquals("boom", name);
+                failures.incrementAndGet();
+            }
+        }, 3));
+
+        Assertions.assertEquals(1, failures.get());
+        Assertions.assertEquals(
+                "hi",
+                Assertions.assertDoesNotThrow(() -> fresh.invokeFunction("hello"))
+        );
+    }
+
+    @Test
+    public void testWarmupKeepsRegistrationOrder() {
+        ScriptEngineImpl engine = (ScriptEngineImpl) new ScriptEngineFactoryImpl().getScriptEngine();
+
+        // compiled first but never run, so its functions never became globals;
+        Assertions.assertDoesNotThrow(() -> engine.compile("def foo() { 'A' }\ndef onlyCompiled() { 1 }"));
+        Assertions.assertDoesNotThrow(() -> engine.eval("def foo() { 'B' }"));
+
+        StringWriter out = new StringWriter();
+        Assertions.assertDoesNotThrow(() -> engine.snapshotManifest(10).write(out));
+        WarmupManifest manifest = Assertions.assertDoesNotThrow(() -> WarmupManifest.read(new StringReader(out.toString())));
+
+        Assertions.assertEquals(2, manifest.getScripts().size());
+        Assertions.assertTrue(manifest.getScripts().get(0).isRegistered());
+        Assertions.assertFalse(manifest.getScripts().get(1).isRegistered());
+
+        ScriptEngineImpl fresh = (ScriptEngineImpl) new ScriptEngineFactoryImpl().getScriptEngine();
+        Assertions.assertDoesNotThrow(() -> fresh.warmup(manifest, null));
+
+        Assertions.assertEquals(
+                "B",
+                Assertions.assertDoesNotThrow(() -> fresh.invokeFunction("foo"))
+        );
+        Assertions.assertThrows(NoSuchMethodException.class, () -> fresh.invokeFunction("onlyCompiled"));
+    }
+
+    @Test
+    public void testCompiledFastPath() {
+        ScriptEngineImpl engine = (ScriptEngineImpl) new ScriptEngineFactoryImpl().getScriptEngine();
+        engine.setBindings(new SimpleBindings(), ScriptContext.GLOBAL_SCOPE);
+        engine.getContext().setAttribute("base", 10, ScriptContext.GLOBAL_SCOPE);
+
+        CompiledScriptImpl compiled = Assertions.assertDoesNotThrow(
+                () -> engine.compile("def scale(v) { v * 2 }\nresult = scale(x) + base")
+        );
+
+        SimpleBindings bindings = new SimpleBindings();
+        bindings.put("x", 1);
+        Assertions.assertEquals(12, Assertions.assertDoesNotThrow(() -> compiled.eval(bindings)));
+        Assertions.assertEquals(12, bindings.get("result"));
+
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("x", 4);
+        long asLong = Assertions.assertDoesNotThrow(() -> compiled.evalLong(vars));
+        Assertions.assertEquals(18L, asLong);
+        Assertions.assertTrue(Assertions.assertDoesNotThrow(() -> compiled.evalBoolean(vars)));
+
+        // a null result is rejected by all the typed accessors, evalBoolean included;
+        CompiledScriptImpl nothing = Assertions.assertDoesNotThrow(() -> engine.compile("null"));
+        Assertions.assertThrows(ScriptException.class, () -> nothing.evalBoolean(vars));
+        Assertions.assertThrows(ScriptException.class, () -> nothing.evalInt(vars));
+
+        // the functions are registered by the fast path too;
+        Assertions.assertEquals(
+                6,
+                Assertions.assertDoesNotThrow(() -> engine.invokeFunction("scale", 3))
+        );
+    }
+
+    @Test
+    public void testCompiledFunctionsKeepContext() {
+        ScriptEngineImpl engine = (ScriptEngineImpl) new ScriptEngineFactoryImpl().getScriptEngine();
+        engine.put("base", 100);
+
+        CompiledScriptImpl compiled = Assertions.assertDoesNotThrow(
+                () -> engine.compile("def plusBase(v) { v + base }\nplusBase(x)")
+        );
+
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("x", 1);
+        vars.put("base", 5);
+        Assertions.assertEquals(6, Assertions.assertDoesNotThrow(() -> compiled.evalDirect(vars)));
+
+        // the function registered by the run without context still sees the engine scope;
+        Assertions.assertEquals(
+                101,
+                Assertions.assertDoesNotThrow(() -> engine.invokeFunction("plusBase", 1))
+        );
+    }
+
+    @Test
+    public void testCompiledBindingsUseEngineWriter() {
+        ScriptEngineImpl engine = (ScriptEngineImpl) new ScriptEngineFactoryImpl().getScriptEngine();
+        StringWriter out = new StringWriter();
+        engine.getContext().setWriter(out);
+
+        CompiledScriptImpl compiled = Assertions.assertDoesNotThrow(() -> engine.compile("println x; context != null"));
+
+        SimpleBindings bindings = new SimpleBindings();
+        bindings.put("x", "hello");
+        Assertions.assertEquals(true, Assertions.assertDoesNotThrow(() -> compiled.eval(bindings)));
+        Assertions.assertEquals("hello", out.toString().trim());
+    }
+
 }